@@ -0,0 +1,958 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Represents a way of writing and reading single elements of type T
+interface IElementCodec<T> {
+  // Writes the value into out; a BufferOverflowException asks the caller for more room
+  void write(T value, ByteBuffer out);
+
+  // Reads a value from in, which holds exactly the bytes written for it
+  T read(ByteBuffer in) throws IOException;
+}
+
+// Writes and reads Strings as UTF-8
+class StringCodec implements IElementCodec<String> {
+  public void write(String value, ByteBuffer out) {
+    out.put(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public String read(ByteBuffer in) {
+    byte[] bytes = new byte[in.remaining()];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
+
+// Writes and reads Integers as four big-endian bytes
+class IntegerCodec implements IElementCodec<Integer> {
+  public void write(Integer value, ByteBuffer out) {
+    out.putInt(value);
+  }
+
+  public Integer read(ByteBuffer in) throws IOException {
+    if (in.remaining() != 4) {
+      throw new IOException("Integer element must be 4 bytes, not " + in.remaining());
+    }
+    return in.getInt();
+  }
+}
+
+/**
+ * A compact, versioned binary format for checkpointing Deque contents and PermutationCode
+ * keys. Every checkpoint starts with a six-byte header: the magic bytes "PCDQ", a format
+ * version and the kind of checkpoint that follows.
+ *
+ * Deques are written as a stream of records, one per element, ending with a zero. Each
+ * record is a varint holding the length of the element's encoding plus two (one marks a
+ * null element), followed by that encoding. Elements are at most MAX_ELEMENT_SIZE bytes.
+ * Deques of Integers can instead be written as blocks of zigzag varints, each block
+ * prefixed by its element count, ending with an empty block.
+ *
+ * Permutation codes are written in a fixed size: a flag byte, the alphabet length as two
+ * bytes, the alphabet itself unless it is the default a-z, then one byte per letter giving
+ * the position in the alphabet of its encoding. A key over a-z takes 35 bytes.
+ *
+ * All writes go through a CheckpointWriter and all reads stream through a
+ * CheckpointReader, each holding one fixed-size buffer. A reader fills its buffer ahead of
+ * what it has parsed, so the methods that take a channel read one checkpoint per channel.
+ * To store several checkpoints one after another on the same channel, write them all with
+ * one CheckpointWriter and read them back with one CheckpointReader.
+ */
+class CheckpointFormat {
+  static final byte[] MAGIC = { 'P', 'C', 'D', 'Q' };
+  static final byte VERSION = 1;
+
+  static final byte KIND_DEQUE = 1;
+  static final byte KIND_INT_DEQUE = 2;
+  static final byte KIND_PERMUTATION = 3;
+
+  // Permutation flag: the alphabet is a-z and is not written
+  static final byte FLAG_DEFAULT_ALPHABET = 1;
+
+  static final int BUFFER_SIZE = 1 << 16;
+  static final int INT_BLOCK_SIZE = 1024;
+
+  // The largest element encoding accepted, so a corrupt length cannot exhaust memory
+  static final int MAX_ELEMENT_SIZE = 1 << 24;
+
+  // Buffer size for reading a lone permutation checkpoint. The layout takes 9 + n bytes
+  // for a-z and 9 + 3n bytes for any other n-letter alphabet, so a-z and alphabets of up
+  // to 18 letters fit in one read; larger ones refill the buffer as they are read
+  static final int PERMUTATION_READ_SIZE = 64;
+
+  /**
+   * Writes every element of the deque, from head to tail, using the given codec
+   *
+   * @param deque the deque to checkpoint
+   * @param codec writes each element
+   * @param out the channel to write to
+   * @throws IOException if the channel cannot be written
+   * @throws IllegalArgumentException if an element encodes to more than MAX_ELEMENT_SIZE
+   */
+  static <T> void writeDeque(Deque<T> deque, IElementCodec<T> codec, WritableByteChannel out)
+      throws IOException {
+    writeDeque(deque, codec, new CheckpointWriter(out));
+  }
+
+  /**
+   * Writes every element of the deque, from head to tail, using the given codec and writer
+   */
+  static <T> void writeDeque(Deque<T> deque, IElementCodec<T> codec, CheckpointWriter writer)
+      throws IOException {
+    writer.putHeader(KIND_DEQUE);
+    ByteBuffer scratch = ByteBuffer.allocate(256);
+    // Walk the links directly rather than recursing through the node chain
+    for (ANode<T> node = deque.header.next; !node.isSentinel(); node = node.next) {
+      T value = ((Node<T>) node).data;
+      if (value == null) {
+        writer.putVarint(1);
+        continue;
+      }
+      while (true) {
+        scratch.clear();
+        try {
+          codec.write(value, scratch);
+          break;
+        } catch (BufferOverflowException e) {
+          if (scratch.capacity() >= MAX_ELEMENT_SIZE) {
+            throw new IllegalArgumentException(
+                "Element encodes to more than " + MAX_ELEMENT_SIZE + " bytes");
+          }
+          scratch = ByteBuffer.allocate(Math.min(scratch.capacity() * 2, MAX_ELEMENT_SIZE));
+        }
+      }
+      scratch.flip();
+      writer.putVarint(scratch.remaining() + 2L);
+      writer.putBytes(scratch);
+    }
+    writer.putVarint(0);
+    writer.flush();
+  }
+
+  /**
+   * Reads a deque written by writeDeque, adding the elements in their original order
+   *
+   * @param in the channel to read from
+   * @param codec reads each element
+   * @return the restored deque
+   * @throws IOException if the channel cannot be read or does not hold a deque checkpoint
+   */
+  static <T> Deque<T> readDeque(ReadableByteChannel in, IElementCodec<T> codec)
+      throws IOException {
+    return readDeque(new CheckpointReader(in), codec);
+  }
+
+  /**
+   * Reads the next deque checkpoint from the given reader
+   */
+  static <T> Deque<T> readDeque(CheckpointReader reader, IElementCodec<T> codec)
+      throws IOException {
+    reader.expectHeader(KIND_DEQUE);
+    Deque<T> deque = new Deque<T>();
+    while (true) {
+      long tag = reader.getVarint();
+      if (tag == 0) {
+        return deque;
+      } else if (tag == 1) {
+        deque.addAtTail(null);
+      } else {
+        if (tag < 0 || tag - 2 > MAX_ELEMENT_SIZE) {
+          throw new IOException("Bad element length: " + (tag - 2) + " bytes");
+        }
+        ByteBuffer element = reader.getBytes((int) (tag - 2));
+        try {
+          deque.addAtTail(codec.read(element));
+        } catch (BufferUnderflowException e) {
+          throw new IOException("Element shorter than its codec expects", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes every element of the deque, from head to tail, as zigzag varints
+   *
+   * @param deque the deque to checkpoint
+   * @param out the channel to write to
+   * @throws IOException if the channel cannot be written
+   * @throws IllegalArgumentException if the deque holds a null element
+   */
+  static void writeIntDeque(Deque<Integer> deque, WritableByteChannel out) throws IOException {
+    writeIntDeque(deque, new CheckpointWriter(out));
+  }
+
+  /**
+   * Writes every element of the deque, from head to tail, as zigzag varints to the writer
+   */
+  static void writeIntDeque(Deque<Integer> deque, CheckpointWriter writer) throws IOException {
+    writer.putHeader(KIND_INT_DEQUE);
+    int[] block = new int[INT_BLOCK_SIZE];
+    int count = 0;
+    for (ANode<Integer> node = deque.header.next; !node.isSentinel(); node = node.next) {
+      Integer value = ((Node<Integer>) node).data;
+      if (value == null) {
+        throw new IllegalArgumentException("Integer deques cannot hold null elements");
+      }
+      block[count++] = value;
+      if (count == block.length) {
+        writer.putIntBlock(block, count);
+        count = 0;
+      }
+    }
+    if (count > 0) {
+      writer.putIntBlock(block, count);
+    }
+    writer.putVarint(0);
+    writer.flush();
+  }
+
+  /**
+   * Reads a deque written by writeIntDeque, adding the elements in their original order
+   *
+   * @param in the channel to read from
+   * @return the restored deque
+   * @throws IOException if the channel cannot be read or does not hold an integer deque
+   */
+  static Deque<Integer> readIntDeque(ReadableByteChannel in) throws IOException {
+    return readIntDeque(new CheckpointReader(in));
+  }
+
+  /**
+   * Reads the next integer deque checkpoint from the given reader
+   */
+  static Deque<Integer> readIntDeque(CheckpointReader reader) throws IOException {
+    reader.expectHeader(KIND_INT_DEQUE);
+    Deque<Integer> deque = new Deque<Integer>();
+    while (true) {
+      long count = reader.getVarint();
+      if (count == 0) {
+        return deque;
+      }
+      if (count < 0 || count > INT_BLOCK_SIZE) {
+        throw new IOException("Bad block size: " + count + " elements");
+      }
+      for (long i = 0; i < count; i++) {
+        long zigzag = reader.getVarint();
+        if (zigzag < 0 || zigzag > 0xFFFFFFFFL) {
+          throw new IOException("Value out of integer range");
+        }
+        deque.addAtTail((int) ((zigzag >>> 1) ^ -(zigzag & 1)));
+      }
+    }
+  }
+
+  /**
+   * Writes the alphabet and code of the given permutation code
+   *
+   * @param code the permutation code to checkpoint
+   * @param out the channel to write to
+   * @throws IOException if the channel cannot be written
+   * @throws IllegalArgumentException if the code is not a permutation of its alphabet, or
+   *     the alphabet has more than 256 letters
+   */
+  static void writePermutation(PermutationCode code, WritableByteChannel out)
+      throws IOException {
+    char[] alphabet = CompiledPermutationCode.toArray(code.alphabet);
+    writePermutation(alphabet, CompiledPermutationCode.toArray(code.code),
+        new CheckpointWriter(out, ByteBuffer.allocate(permutationSize(alphabet))));
+  }
+
+  /**
+   * Writes the alphabet and code of the given compiled code
+   *
+   * @param code the compiled code to checkpoint
+   * @param out the channel to write to
+   * @throws IOException if the channel cannot be written
+   */
+  static void writePermutation(CompiledPermutationCode code, WritableByteChannel out)
+      throws IOException {
+    char[] alphabet = code.alphabet();
+    writePermutation(alphabet, code.code(),
+        new CheckpointWriter(out, ByteBuffer.allocate(permutationSize(alphabet))));
+  }
+
+  /**
+   * Writes the alphabet and code of the given permutation code to the writer
+   */
+  static void writePermutation(PermutationCode code, CheckpointWriter writer)
+      throws IOException {
+    writePermutation(CompiledPermutationCode.toArray(code.alphabet),
+        CompiledPermutationCode.toArray(code.code), writer);
+  }
+
+  /**
+   * Produces the number of bytes the permutation layout takes for the given alphabet,
+   * but at least the smallest buffer a CheckpointWriter accepts
+   */
+  private static int permutationSize(char[] alphabet) {
+    int size = MAGIC.length + 2 + 1 + 2 + alphabet.length;
+    if (!isDefaultAlphabet(alphabet)) {
+      size += 2 * alphabet.length;
+    }
+    return Math.max(size, CheckpointWriter.MIN_BUFFER_SIZE);
+  }
+
+  /**
+   * Writes the given alphabet and code in the fixed-size permutation layout
+   */
+  private static void writePermutation(char[] alphabet, char[] code, CheckpointWriter writer)
+      throws IOException {
+    if (alphabet.length != code.length || alphabet.length > 256) {
+      throw new IllegalArgumentException(
+          "Alphabet and code must have the same length, at most 256");
+    }
+    boolean defaultAlphabet = isDefaultAlphabet(alphabet);
+    writer.putHeader(KIND_PERMUTATION);
+    writer.putByte(defaultAlphabet ? FLAG_DEFAULT_ALPHABET : 0);
+    writer.putChar((char) alphabet.length);
+    if (!defaultAlphabet) {
+      for (char c : alphabet) {
+        writer.putChar(c);
+      }
+    }
+    boolean[] used = new boolean[alphabet.length];
+    for (char c : code) {
+      int index = indexOf(alphabet, c);
+      if (index < 0 || used[index]) {
+        throw new IllegalArgumentException("Code must be a permutation of the alphabet");
+      }
+      used[index] = true;
+      writer.putByte(index);
+    }
+    writer.flush();
+  }
+
+  /**
+   * Reads a permutation code written by writePermutation
+   *
+   * @param in the channel to read from
+   * @return the restored permutation code
+   * @throws IOException if the channel cannot be read or does not hold a permutation
+   */
+  static PermutationCode readPermutation(ReadableByteChannel in) throws IOException {
+    return readPermutation(
+        new CheckpointReader(in, ByteBuffer.allocate(PERMUTATION_READ_SIZE)));
+  }
+
+  /**
+   * Reads the next permutation checkpoint from the given reader
+   */
+  static PermutationCode readPermutation(CheckpointReader reader) throws IOException {
+    reader.expectHeader(KIND_PERMUTATION);
+    int flags = reader.getByte();
+    int length = reader.getChar();
+    if (length > 256) {
+      throw new IOException("Alphabet too large: " + length + " letters");
+    }
+    char[] alphabet = new char[length];
+    if ((flags & FLAG_DEFAULT_ALPHABET) != 0) {
+      if (length != 26) {
+        throw new IOException("Default alphabet must have 26 letters, not " + length);
+      }
+      for (int i = 0; i < length; i++) {
+        alphabet[i] = (char) ('a' + i);
+      }
+    } else {
+      for (int i = 0; i < length; i++) {
+        alphabet[i] = reader.getChar();
+      }
+    }
+    ArrayList<Character> alphabetList = new ArrayList<Character>(length);
+    for (char c : alphabet) {
+      alphabetList.add(c);
+    }
+    ArrayList<Character> codeList = new ArrayList<Character>(length);
+    boolean[] used = new boolean[length];
+    for (int i = 0; i < length; i++) {
+      int index = reader.getByte();
+      if (index >= length || used[index]) {
+        throw new IOException("Stored code is not a permutation of the alphabet");
+      }
+      used[index] = true;
+      codeList.add(alphabet[index]);
+    }
+    PermutationCode result = new PermutationCode(alphabetList, false);
+    result.code = codeList;
+    return result;
+  }
+
+  /**
+   * Checks whether the alphabet is exactly the letters a-z in order
+   */
+  private static boolean isDefaultAlphabet(char[] alphabet) {
+    if (alphabet.length != 26) {
+      return false;
+    }
+    for (int i = 0; i < alphabet.length; i++) {
+      if (alphabet[i] != 'a' + i) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Produces the position of c in chars, or -1 if it is not there
+   */
+  private static int indexOf(char[] chars, char c) {
+    for (int i = 0; i < chars.length; i++) {
+      if (chars[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
+
+/**
+ * Buffers checkpoint output and writes it to a channel whenever the buffer fills.
+ * One writer may write several checkpoints one after another.
+ */
+class CheckpointWriter {
+  // Room for the header or the longest varint
+  static final int MIN_BUFFER_SIZE = 16;
+
+  private final WritableByteChannel out;
+  private final ByteBuffer buffer;
+
+  /**
+   * Constructor that buffers through a new heap buffer of the default size
+   */
+  CheckpointWriter(WritableByteChannel out) {
+    this(out, ByteBuffer.allocate(CheckpointFormat.BUFFER_SIZE));
+  }
+
+  /**
+   * Constructor that buffers through the given buffer, which callers may reuse once the
+   * writer is no longer used
+   *
+   * @throws IllegalArgumentException if the buffer is smaller than MIN_BUFFER_SIZE
+   */
+  CheckpointWriter(WritableByteChannel out, ByteBuffer buffer) {
+    if (buffer.capacity() < MIN_BUFFER_SIZE) {
+      throw new IllegalArgumentException(
+          "Buffer must hold at least " + MIN_BUFFER_SIZE + " bytes");
+    }
+    this.out = out;
+    this.buffer = buffer;
+    this.buffer.clear();
+  }
+
+  /**
+   * Writes the magic bytes, the format version and the kind of checkpoint
+   */
+  void putHeader(byte kind) throws IOException {
+    this.ensure(CheckpointFormat.MAGIC.length + 2);
+    this.buffer.put(CheckpointFormat.MAGIC);
+    this.buffer.put(CheckpointFormat.VERSION);
+    this.buffer.put(kind);
+  }
+
+  void putByte(int value) throws IOException {
+    this.ensure(1);
+    this.buffer.put((byte) value);
+  }
+
+  void putChar(char value) throws IOException {
+    this.ensure(2);
+    this.buffer.putChar(value);
+  }
+
+  /**
+   * Writes a non-negative value in seven-bit groups, low group first
+   */
+  void putVarint(long value) throws IOException {
+    this.ensure(10);
+    while ((value & ~0x7FL) != 0) {
+      this.buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    this.buffer.put((byte) value);
+  }
+
+  /**
+   * Writes the first count values of the block, prefixed by count, as zigzag varints
+   */
+  void putIntBlock(int[] block, int count) throws IOException {
+    this.putVarint(count);
+    for (int i = 0; i < count; i++) {
+      int value = block[i];
+      this.putVarint(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+  }
+
+  /**
+   * Writes the remaining bytes of src, in several pieces if it is larger than the buffer
+   */
+  void putBytes(ByteBuffer src) throws IOException {
+    while (src.hasRemaining()) {
+      if (!this.buffer.hasRemaining()) {
+        this.drain();
+      }
+      int n = Math.min(src.remaining(), this.buffer.remaining());
+      ByteBuffer piece = src.duplicate();
+      piece.limit(piece.position() + n);
+      this.buffer.put(piece);
+      src.position(src.position() + n);
+    }
+  }
+
+  /**
+   * Writes out everything buffered so far
+   */
+  void flush() throws IOException {
+    this.drain();
+  }
+
+  /**
+   * Makes room for at least n more bytes in the buffer
+   */
+  private void ensure(int n) throws IOException {
+    if (this.buffer.remaining() < n) {
+      this.drain();
+    }
+  }
+
+  private void drain() throws IOException {
+    this.buffer.flip();
+    while (this.buffer.hasRemaining()) {
+      this.out.write(this.buffer);
+    }
+    this.buffer.clear();
+  }
+}
+
+/**
+ * Streams checkpoint input from a channel through a fixed-size buffer.
+ * One reader may read several checkpoints written one after another.
+ */
+class CheckpointReader {
+  private final ReadableByteChannel in;
+  private final ByteBuffer buffer;
+
+  /**
+   * Constructor that streams through a new heap buffer of the default size
+   */
+  CheckpointReader(ReadableByteChannel in) {
+    this(in, ByteBuffer.allocate(CheckpointFormat.BUFFER_SIZE));
+  }
+
+  /**
+   * Constructor that streams through the given buffer, which callers may reuse once the
+   * reader is no longer used
+   *
+   * @throws IllegalArgumentException if the buffer is smaller than MIN_BUFFER_SIZE
+   */
+  CheckpointReader(ReadableByteChannel in, ByteBuffer buffer) {
+    if (buffer.capacity() < CheckpointWriter.MIN_BUFFER_SIZE) {
+      throw new IllegalArgumentException(
+          "Buffer must hold at least " + CheckpointWriter.MIN_BUFFER_SIZE + " bytes");
+    }
+    this.in = in;
+    this.buffer = buffer;
+    // Start empty, in read mode
+    this.buffer.clear();
+    this.buffer.flip();
+  }
+
+  /**
+   * Reads the header and checks that it is the current version of the expected kind
+   */
+  void expectHeader(byte kind) throws IOException {
+    for (byte expected : CheckpointFormat.MAGIC) {
+      if ((byte) this.getByte() != expected) {
+        throw new IOException("Not a checkpoint");
+      }
+    }
+    int version = this.getByte();
+    if (version != CheckpointFormat.VERSION) {
+      throw new IOException("Unsupported checkpoint version " + version);
+    }
+    int actual = this.getByte();
+    if (actual != kind) {
+      throw new IOException("Expected checkpoint kind " + kind + " but found " + actual);
+    }
+  }
+
+  /**
+   * Reads one byte as a value from 0 to 255
+   */
+  int getByte() throws IOException {
+    this.require(1);
+    return this.buffer.get() & 0xFF;
+  }
+
+  char getChar() throws IOException {
+    this.require(2);
+    return this.buffer.getChar();
+  }
+
+  /**
+   * Reads a value written by CheckpointWriter.putVarint
+   */
+  long getVarint() throws IOException {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = this.getByte();
+      // The tenth byte holds only the top bit of a 64-bit value
+      if (shift == 63 && b > 1) {
+        throw new IOException("Malformed varint");
+      }
+      result |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  /**
+   * Reads the next n bytes. The result is only valid until the next read.
+   */
+  ByteBuffer getBytes(int n) throws IOException {
+    if (n <= this.buffer.capacity()) {
+      this.require(n);
+      ByteBuffer result = this.buffer.slice();
+      result.limit(n);
+      this.buffer.position(this.buffer.position() + n);
+      return result;
+    }
+    // Larger than the buffer: gather it into a buffer of its own
+    ByteBuffer result = ByteBuffer.allocate(n);
+    while (result.hasRemaining()) {
+      if (!this.buffer.hasRemaining()) {
+        this.require(1);
+      }
+      int take = Math.min(result.remaining(), this.buffer.remaining());
+      ByteBuffer piece = this.buffer.duplicate();
+      piece.limit(piece.position() + take);
+      result.put(piece);
+      this.buffer.position(this.buffer.position() + take);
+    }
+    result.flip();
+    return result;
+  }
+
+  /**
+   * Reads from the channel until at least n bytes are buffered
+   *
+   * @throws EOFException if the channel ends first
+   */
+  private void require(int n) throws IOException {
+    if (this.buffer.remaining() >= n) {
+      return;
+    }
+    this.buffer.compact();
+    while (this.buffer.position() < n) {
+      if (this.in.read(this.buffer) < 0) {
+        throw new EOFException("Checkpoint ended unexpectedly");
+      }
+    }
+    this.buffer.flip();
+  }
+}
+
+/**
+ * Examples and tests for the CheckpointFormat class
+ */
+class ExamplesCheckpointFormat {
+  // Deque with ("abc", null, "", "h\u00e9llo")
+  Deque<String> strings;
+
+  // Deque with integers of both signs and every varint length
+  Deque<Integer> ints;
+
+  /**
+   * Initialize examples
+   */
+  void initExamples() {
+    this.strings = new Deque<String>();
+    this.strings.addAtTail("abc");
+    this.strings.addAtTail(null);
+    this.strings.addAtTail("");
+    this.strings.addAtTail("h\u00e9llo");
+
+    // Small values of both signs, then every power of two and its neighbours up to the
+    // int boundaries, so each varint length is exercised
+    this.ints = new Deque<Integer>();
+    for (int i = 0; i < 4000; i++) {
+      this.ints.addAtTail(i % 2 == 0 ? i : -i);
+    }
+    for (int shift = 0; shift < 31; shift++) {
+      int power = 1 << shift;
+      this.ints.addAtTail(power - 1);
+      this.ints.addAtTail(power);
+      this.ints.addAtTail(-power);
+      this.ints.addAtTail(-power - 1);
+    }
+    this.ints.addAtHead(Integer.MIN_VALUE);
+    this.ints.addAtTail(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Produces the elements of the deque, from head to tail, without recursing
+   */
+  <T> ArrayList<T> contents(Deque<T> deque) {
+    ArrayList<T> result = new ArrayList<T>();
+    for (ANode<T> node = deque.header.next; !node.isSentinel(); node = node.next) {
+      result.add(((Node<T>) node).data);
+    }
+    return result;
+  }
+
+  /**
+   * Test writing and reading a deque of strings through the element codec path
+   */
+  boolean testStringDeque(Tester t) throws IOException {
+    this.initExamples();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CheckpointFormat.writeDeque(this.strings, new StringCodec(), Channels.newChannel(bytes));
+    Deque<String> restored = CheckpointFormat.readDeque(
+        Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), new StringCodec());
+    return t.checkExpect(this.contents(restored).toString(),
+        this.contents(this.strings).toString(), "Strings restored in order");
+  }
+
+  /**
+   * Test writing and reading a deque of integers through the varint path
+   */
+  boolean testIntDeque(Tester t) throws IOException {
+    this.initExamples();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CheckpointFormat.writeIntDeque(this.ints, Channels.newChannel(bytes));
+    Deque<Integer> restored = CheckpointFormat.readIntDeque(
+        Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+
+    ByteArrayOutputStream generic = new ByteArrayOutputStream();
+    CheckpointFormat.writeDeque(this.ints, new IntegerCodec(), Channels.newChannel(generic));
+    return t.checkExpect(this.contents(restored), this.contents(this.ints),
+        "Integers restored in order")
+        && t.checkExpect(bytes.size() < generic.size(), true, "Varints are smaller");
+  }
+
+  /**
+   * Test that an element larger than the stream buffer is written and read in pieces
+   */
+  boolean testLargeElement(Tester t) throws IOException {
+    StringBuilder big = new StringBuilder();
+    while (big.length() < 3 * CheckpointFormat.BUFFER_SIZE) {
+      big.append("0123456789");
+    }
+    Deque<String> deque = new Deque<String>();
+    deque.addAtTail("before");
+    deque.addAtTail(big.toString());
+    deque.addAtTail("after");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CheckpointFormat.writeDeque(deque, new StringCodec(), Channels.newChannel(bytes));
+    Deque<String> restored = CheckpointFormat.readDeque(
+        Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), new StringCodec());
+    return t.checkExpect(this.contents(restored), this.contents(deque), "Large element restored");
+  }
+
+  /**
+   * Test writing and reading permutation codes
+   */
+  boolean testPermutation(Tester t) throws IOException {
+    ArrayList<Character> alphabet = new ArrayList<Character>();
+    for (char c = 'a'; c <= 'z'; c++) {
+      alphabet.add(c);
+    }
+    PermutationCode code = new PermutationCode(alphabet, true);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CheckpointFormat.writePermutation(code, Channels.newChannel(bytes));
+    PermutationCode restored = CheckpointFormat.readPermutation(
+        Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+
+    PermutationCode small = new PermutationCode(new ArrayList<Character>());
+    small.alphabet = new ArrayList<Character>();
+    for (char c : "abcde".toCharArray()) {
+      small.alphabet.add(c);
+    }
+    for (char c : "beacd".toCharArray()) {
+      small.code.add(c);
+    }
+    ByteArrayOutputStream smallBytes = new ByteArrayOutputStream();
+    CheckpointFormat.writePermutation(small, Channels.newChannel(smallBytes));
+    PermutationCode smallRestored = CheckpointFormat.readPermutation(
+        Channels.newChannel(new ByteArrayInputStream(smallBytes.toByteArray())));
+
+    return t.checkExpect(restored.code, code.code, "Code restored")
+        && t.checkExpect(restored.alphabet, code.alphabet, "Alphabet restored")
+        && t.checkExpect(bytes.size(), 35, "Fixed size for a-z keys")
+        && t.checkExpect(smallRestored.encode("badace"), "ebcbad", "Custom alphabet restored");
+  }
+
+  /**
+   * Test writing several checkpoints one after another on one channel and reading them
+   * back with one reader
+   */
+  boolean testSeveralCheckpoints(Tester t) throws IOException {
+    this.initExamples();
+    ArrayList<Character> alphabet = new ArrayList<Character>();
+    for (char c = 'a'; c <= 'z'; c++) {
+      alphabet.add(c);
+    }
+    PermutationCode code = new PermutationCode(alphabet, true);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CheckpointWriter writer = new CheckpointWriter(Channels.newChannel(bytes));
+    CheckpointFormat.writePermutation(code, writer);
+    CheckpointFormat.writeIntDeque(this.ints, writer);
+    CheckpointFormat.writeDeque(this.strings, new StringCodec(), writer);
+
+    // A small buffer makes the reader refill many times across checkpoint boundaries
+    CheckpointReader reader = new CheckpointReader(
+        Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())),
+        ByteBuffer.allocate(32));
+    PermutationCode restoredCode = CheckpointFormat.readPermutation(reader);
+    Deque<Integer> restoredInts = CheckpointFormat.readIntDeque(reader);
+    Deque<String> restoredStrings = CheckpointFormat.readDeque(reader, new StringCodec());
+    return t.checkExpect(restoredCode.code, code.code, "Permutation restored")
+        && t.checkExpect(this.contents(restoredInts), this.contents(this.ints),
+            "Integers restored")
+        && t.checkExpect(this.contents(restoredStrings).toString(),
+            this.contents(this.strings).toString(), "Strings restored");
+  }
+
+  /**
+   * Test that a truncated or mislabelled checkpoint is rejected
+   */
+  boolean testMalformed(Tester t) throws IOException {
+    this.initExamples();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CheckpointFormat.writeIntDeque(this.ints, Channels.newChannel(bytes));
+    byte[] all = bytes.toByteArray();
+    byte[] truncated = Arrays.copyOf(all, all.length / 2);
+    boolean truncatedRejected = false;
+    try {
+      CheckpointFormat.readIntDeque(Channels.newChannel(new ByteArrayInputStream(truncated)));
+    } catch (EOFException e) {
+      truncatedRejected = true;
+    }
+    boolean wrongKindRejected = false;
+    try {
+      CheckpointFormat.readDeque(Channels.newChannel(new ByteArrayInputStream(all)),
+          new IntegerCodec());
+    } catch (IOException e) {
+      wrongKindRejected = true;
+    }
+
+    // A deque header followed by a record claiming an element of about 2 GB
+    ByteArrayOutputStream huge = new ByteArrayOutputStream();
+    CheckpointWriter hugeWriter = new CheckpointWriter(Channels.newChannel(huge));
+    hugeWriter.putHeader(CheckpointFormat.KIND_DEQUE);
+    hugeWriter.putVarint(Integer.MAX_VALUE);
+    hugeWriter.flush();
+    boolean hugeRejected = false;
+    try {
+      CheckpointFormat.readDeque(
+          Channels.newChannel(new ByteArrayInputStream(huge.toByteArray())), new StringCodec());
+    } catch (IOException e) {
+      hugeRejected = true;
+    }
+
+    // A three-byte record where the integer codec expects four
+    ByteArrayOutputStream shortRecord = new ByteArrayOutputStream();
+    CheckpointWriter shortWriter = new CheckpointWriter(Channels.newChannel(shortRecord));
+    shortWriter.putHeader(CheckpointFormat.KIND_DEQUE);
+    shortWriter.putVarint(3 + 2);
+    shortWriter.putBytes(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+    shortWriter.putVarint(0);
+    shortWriter.flush();
+    boolean shortRejected = false;
+    try {
+      CheckpointFormat.readDeque(
+          Channels.newChannel(new ByteArrayInputStream(shortRecord.toByteArray())),
+          new IntegerCodec());
+    } catch (IOException e) {
+      shortRejected = true;
+    }
+
+    // A record tag that decodes to a negative length
+    ByteArrayOutputStream negative = new ByteArrayOutputStream();
+    CheckpointWriter negativeWriter = new CheckpointWriter(Channels.newChannel(negative));
+    negativeWriter.putHeader(CheckpointFormat.KIND_DEQUE);
+    negativeWriter.putVarint(-5);
+    negativeWriter.flush();
+    boolean negativeRejected = false;
+    try {
+      CheckpointFormat.readDeque(
+          Channels.newChannel(new ByteArrayInputStream(negative.toByteArray())),
+          new StringCodec());
+    } catch (IOException e) {
+      negativeRejected = true;
+    }
+
+    // A ten-byte tag for a four-byte integer record, whose last byte carries bits past
+    // the top of a long that would otherwise be silently dropped
+    ByteArrayOutputStream overlong = new ByteArrayOutputStream();
+    CheckpointWriter overlongWriter = new CheckpointWriter(Channels.newChannel(overlong));
+    overlongWriter.putHeader(CheckpointFormat.KIND_DEQUE);
+    overlongWriter.putByte(0x80 | (4 + 2));
+    for (int i = 0; i < 8; i++) {
+      overlongWriter.putByte(0x80);
+    }
+    overlongWriter.putByte(0x02);
+    overlongWriter.putBytes(ByteBuffer.wrap(new byte[] { 0, 0, 0, 7 }));
+    overlongWriter.putVarint(0);
+    overlongWriter.flush();
+    boolean overlongRejected = false;
+    try {
+      CheckpointFormat.readDeque(
+          Channels.newChannel(new ByteArrayInputStream(overlong.toByteArray())),
+          new IntegerCodec());
+    } catch (IOException e) {
+      overlongRejected = true;
+    }
+
+    // An integer block claiming a negative number of values
+    ByteArrayOutputStream negativeBlock = new ByteArrayOutputStream();
+    CheckpointWriter blockWriter = new CheckpointWriter(Channels.newChannel(negativeBlock));
+    blockWriter.putHeader(CheckpointFormat.KIND_INT_DEQUE);
+    blockWriter.putVarint(-1);
+    blockWriter.putVarint(0);
+    blockWriter.flush();
+    boolean negativeBlockRejected = false;
+    try {
+      CheckpointFormat.readIntDeque(
+          Channels.newChannel(new ByteArrayInputStream(negativeBlock.toByteArray())));
+    } catch (IOException e) {
+      negativeBlockRejected = true;
+    }
+
+    // An integer block holding a value too wide for an int
+    ByteArrayOutputStream wide = new ByteArrayOutputStream();
+    CheckpointWriter wideWriter = new CheckpointWriter(Channels.newChannel(wide));
+    wideWriter.putHeader(CheckpointFormat.KIND_INT_DEQUE);
+    wideWriter.putVarint(1);
+    wideWriter.putVarint(1L << 40);
+    wideWriter.putVarint(0);
+    wideWriter.flush();
+    boolean wideRejected = false;
+    try {
+      CheckpointFormat.readIntDeque(
+          Channels.newChannel(new ByteArrayInputStream(wide.toByteArray())));
+    } catch (IOException e) {
+      wideRejected = true;
+    }
+
+    return t.checkExpect(truncatedRejected, true, "Truncated checkpoint rejected")
+        && t.checkExpect(wrongKindRejected, true, "Wrong kind rejected")
+        && t.checkExpect(hugeRejected, true, "Oversized element length rejected")
+        && t.checkExpect(shortRejected, true, "Short integer record rejected")
+        && t.checkExpect(negativeRejected, true, "Negative element length rejected")
+        && t.checkExpect(overlongRejected, true, "Overlong varint rejected")
+        && t.checkExpect(negativeBlockRejected, true, "Negative block size rejected")
+        && t.checkExpect(wideRejected, true, "Value wider than an int rejected");
+  }
+}
@@ -0,0 +1,428 @@
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Represents a way of producing the compiled code for a key that is not yet registered
+interface ICodecLoader {
+  CompiledPermutationCode load(String key);
+}
+
+/**
+ * A thread-safe registry of compiled permutation codes, keyed by tenant or by permutation
+ * fingerprint. Each key is compiled at most once while it stays registered; when the
+ * registry grows past its capacity, codes that have not been used recently are evicted.
+ * Lookups of registered keys never take a lock.
+ *
+ * Loaders run outside any lock of the registry, so a slow loader only delays lookups of
+ * its own key, and a loader may look up other keys. A loader must not look up its own
+ * key, since that lookup would wait for the loader to finish.
+ *
+ * Eviction uses the CLOCK approximation of LRU: registered codes sit in a ring, each with
+ * a bit that is set when it is looked up. On a miss in a full registry a hand sweeps the
+ * ring, clearing set bits and evicting the first code whose bit is already clear, so each
+ * miss costs amortized constant time however large the registry is. Slots freed by
+ * invalidate are filled before the hand evicts anything.
+ */
+class CodecRegistry {
+  // A registered key, its code once loaded, and whether it was looked up since the hand
+  // last passed
+  private static final class Entry {
+    final String key;
+    final CompletableFuture<CompiledPermutationCode> codec;
+    volatile boolean referenced;
+    // Guarded by ringLock: the entry's position in the ring, or -1, and whether it has
+    // left the map
+    int slot;
+    boolean removed;
+
+    Entry(String key) {
+      this.key = key;
+      this.codec = new CompletableFuture<CompiledPermutationCode>();
+      this.slot = -1;
+    }
+  }
+
+  private final int capacity;
+  private final ConcurrentHashMap<String, Entry> entries;
+
+  // The ring of registered entries, the hand that sweeps it, and the slots freed by
+  // invalidate, all guarded by ringLock. Only misses and invalidations take the lock;
+  // readers never wait on it.
+  private final Object ringLock = new Object();
+  private final Entry[] ring;
+  private int filled;
+  private int hand;
+  private final int[] freeSlots;
+  private int freeCount;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Constructor that bounds the number of codes kept in this registry
+   *
+   * @param capacity the maximum number of registered codes
+   * @throws IllegalArgumentException if capacity is not positive
+   */
+  CodecRegistry(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.capacity = capacity;
+    this.entries = new ConcurrentHashMap<String, Entry>(Math.min(capacity, 1 << 16) * 4 / 3 + 1);
+    this.ring = new Entry[capacity];
+    this.freeSlots = new int[capacity];
+  }
+
+  /**
+   * Produces the compiled form of the given permutation code, keyed by its fingerprint
+   *
+   * @param code the permutation code to look up
+   * @return the shared compiled code
+   */
+  CompiledPermutationCode lookup(PermutationCode code) {
+    final char[] alphabet = CompiledPermutationCode.toArray(code.alphabet);
+    final char[] permutation = CompiledPermutationCode.toArray(code.code);
+    return this.lookup(CompiledPermutationCode.fingerprint(alphabet, permutation),
+        new ICodecLoader() {
+          public CompiledPermutationCode load(String key) {
+            return new CompiledPermutationCode(alphabet, permutation);
+          }
+        });
+  }
+
+  /**
+   * Produces the compiled code registered under the given key, using the loader to
+   * compile it if it is not registered. Concurrent lookups of the same missing key
+   * call the loader only once and wait for its result.
+   *
+   * @param key the tenant or fingerprint to look up
+   * @param loader produces the compiled code for the key on a miss; must not look up key
+   * @return the shared compiled code
+   * @throws RuntimeException whatever the loader threw, to every lookup waiting on it
+   */
+  CompiledPermutationCode lookup(String key, ICodecLoader loader) {
+    Entry entry = this.entries.get(key);
+    if (entry == null) {
+      Entry created = new Entry(key);
+      entry = this.entries.putIfAbsent(key, created);
+      if (entry == null) {
+        this.misses.increment();
+        return this.load(created, loader);
+      }
+      // Otherwise another thread registered the key between the two lookups
+    }
+    this.hits.increment();
+    this.touch(entry);
+    return await(entry);
+  }
+
+  /**
+   * Runs the loader for a newly created entry and registers the result, or removes the
+   * entry again if the loader fails
+   */
+  private CompiledPermutationCode load(Entry entry, ICodecLoader loader) {
+    CompiledPermutationCode codec;
+    try {
+      codec = loader.load(entry.key);
+    } catch (RuntimeException | Error e) {
+      this.entries.remove(entry.key, entry);
+      entry.codec.completeExceptionally(e);
+      throw e;
+    }
+    entry.codec.complete(codec);
+    this.register(entry);
+    return codec;
+  }
+
+  /**
+   * Waits for the entry's code to be loaded, rethrowing the loader's failure if it failed
+   */
+  private static CompiledPermutationCode await(Entry entry) {
+    try {
+      return entry.codec.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      } else if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Records that the given entry was just used
+   */
+  private void touch(Entry entry) {
+    // Only write when the bit is clear, so a hot entry's cache line stays shared
+    if (!entry.referenced) {
+      entry.referenced = true;
+    }
+  }
+
+  /**
+   * Places a newly loaded entry in the ring: in a freed slot if there is one, else in an
+   * unused slot, else in the slot of an entry the hand evicts
+   */
+  private void register(Entry entry) {
+    synchronized (this.ringLock) {
+      if (entry.removed) {
+        // Invalidated while it was loading
+        return;
+      }
+      int slot;
+      if (this.freeCount > 0) {
+        slot = this.freeSlots[--this.freeCount];
+      } else if (this.filled < this.capacity) {
+        slot = this.filled++;
+      } else {
+        // Every slot is occupied, since freed slots are always filled first
+        while (this.ring[this.hand].referenced) {
+          this.ring[this.hand].referenced = false;
+          this.hand = (this.hand + 1) % this.capacity;
+        }
+        Entry victim = this.ring[this.hand];
+        victim.removed = true;
+        victim.slot = -1;
+        if (this.entries.remove(victim.key, victim)) {
+          this.evictions.increment();
+        }
+        slot = this.hand;
+        this.hand = (this.hand + 1) % this.capacity;
+      }
+      this.ring[slot] = entry;
+      entry.slot = slot;
+    }
+  }
+
+  /**
+   * Removes the code registered under the given key, if any, freeing its slot for the
+   * next miss
+   *
+   * @param key the tenant or fingerprint to remove
+   */
+  void invalidate(String key) {
+    Entry entry = this.entries.remove(key);
+    if (entry == null) {
+      return;
+    }
+    synchronized (this.ringLock) {
+      entry.removed = true;
+      if (entry.slot >= 0) {
+        this.ring[entry.slot] = null;
+        this.freeSlots[this.freeCount++] = entry.slot;
+        entry.slot = -1;
+      }
+    }
+  }
+
+  /**
+   * Counts the codes currently registered
+   */
+  int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * Counts the lookups that found their key already registered
+   */
+  long hits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Counts the lookups that had to compile their key
+   */
+  long misses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Counts the codes evicted to keep this registry within its capacity
+   */
+  long evictions() {
+    return this.evictions.sum();
+  }
+}
+
+/**
+ * Examples and tests for the CodecRegistry class
+ */
+class ExamplesCodecRegistry {
+  // Registry that holds at most two codes
+  CodecRegistry registry;
+
+  // Loader that counts how many times it compiled a code
+  int loads;
+  ICodecLoader reversed;
+
+  /**
+   * Initialize examples
+   */
+  void initExamples() {
+    this.registry = new CodecRegistry(2);
+    this.loads = 0;
+    this.reversed = new ICodecLoader() {
+      public CompiledPermutationCode load(String key) {
+        ExamplesCodecRegistry.this.loads++;
+        return new CompiledPermutationCode("abc".toCharArray(), "cba".toCharArray());
+      }
+    };
+  }
+
+  /**
+   * Test that a key is compiled once and then shared
+   */
+  boolean testHitAndMiss(Tester t) {
+    this.initExamples();
+    CompiledPermutationCode first = this.registry.lookup("tenant-a", this.reversed);
+    CompiledPermutationCode second = this.registry.lookup("tenant-a", this.reversed);
+    return t.checkExpect(first == second, true, "Same instance is shared")
+        && t.checkExpect(this.loads, 1, "Compiled once")
+        && t.checkExpect(this.registry.hits(), 1L, "One hit")
+        && t.checkExpect(this.registry.misses(), 1L, "One miss")
+        && t.checkExpect(first.encode("abc"), "cba", "Compiled code works");
+  }
+
+  /**
+   * Test that the least recently used code is evicted when the registry is full
+   */
+  boolean testEviction(Tester t) {
+    this.initExamples();
+    this.registry.lookup("tenant-a", this.reversed);
+    this.registry.lookup("tenant-b", this.reversed);
+    this.registry.lookup("tenant-a", this.reversed);
+    this.registry.lookup("tenant-c", this.reversed);
+    int loadsBefore = this.loads;
+    this.registry.lookup("tenant-a", this.reversed);
+    boolean aKept = this.loads == loadsBefore;
+    this.registry.lookup("tenant-b", this.reversed);
+    boolean bEvicted = this.loads == loadsBefore + 1;
+    return t.checkExpect(this.registry.size(), 2, "Size is bounded")
+        && t.checkExpect(aKept, true, "Recently used code is kept")
+        && t.checkExpect(bEvicted, true, "Least recently used code is evicted")
+        && t.checkExpect(this.registry.evictions(), 2L, "Evictions are counted");
+  }
+
+  /**
+   * Test filling the registry with many more keys than it holds, while one hot key keeps
+   * being used
+   */
+  boolean testManyTenants(Tester t) {
+    this.initExamples();
+    CodecRegistry large = new CodecRegistry(1000);
+    for (int i = 0; i < 20000; i++) {
+      large.lookup("tenant-" + i, this.reversed);
+      large.lookup("hot", this.reversed);
+    }
+    int loadsBefore = this.loads;
+    large.lookup("hot", this.reversed);
+    large.lookup("tenant-19999", this.reversed);
+    return t.checkExpect(large.size(), 1000, "Size is bounded")
+        && t.checkExpect(large.misses(), 20001L, "Every new key compiled once")
+        && t.checkExpect(large.evictions(), 19001L, "Every key past capacity evicts one")
+        && t.checkExpect(this.loads, loadsBefore, "Hot and newest keys are kept");
+  }
+
+  /**
+   * Test that a miss after an invalidation reuses the freed slot instead of evicting
+   */
+  boolean testInvalidateThenMiss(Tester t) {
+    CodecRegistry small = new CodecRegistry(3);
+    this.initExamples();
+    small.lookup("a", this.reversed);
+    small.lookup("b", this.reversed);
+    small.lookup("c", this.reversed);
+    small.invalidate("c");
+    small.lookup("d", this.reversed);
+    int loadsBefore = this.loads;
+    small.lookup("a", this.reversed);
+    small.lookup("b", this.reversed);
+    small.lookup("d", this.reversed);
+    return t.checkExpect(small.size(), 3, "Freed slot is filled")
+        && t.checkExpect(small.evictions(), 0L, "Nothing is evicted")
+        && t.checkExpect(this.loads, loadsBefore, "Remaining codes are kept");
+  }
+
+  /**
+   * Test that a loader may look up other keys, and that a failing loader leaves nothing
+   * registered
+   */
+  boolean testLoaderCallsRegistry(Tester t) {
+    this.initExamples();
+    final CodecRegistry shared = new CodecRegistry(4);
+    CompiledPermutationCode outer = shared.lookup("outer", new ICodecLoader() {
+      public CompiledPermutationCode load(String key) {
+        return shared.lookup("inner", ExamplesCodecRegistry.this.reversed);
+      }
+    });
+    boolean failed = false;
+    try {
+      shared.lookup("broken", new ICodecLoader() {
+        public CompiledPermutationCode load(String key) {
+          throw new IllegalStateException("no key for " + key);
+        }
+      });
+    } catch (IllegalStateException e) {
+      failed = true;
+    }
+    return t.checkExpect(outer.encode("abc"), "cba", "Nested lookup loads")
+        && t.checkExpect(shared.size(), 2, "Outer and inner registered")
+        && t.checkExpect(failed, true, "Loader failure is rethrown")
+        && t.checkExpect(shared.lookup("broken", this.reversed).encode("a"), "c",
+            "Failed key can be loaded again");
+  }
+
+  /**
+   * Test looking up permutation codes by fingerprint
+   */
+  boolean testLookupByFingerprint(Tester t) {
+    this.initExamples();
+    ArrayList<Character> alphabet = new ArrayList<Character>();
+    for (char c = 'a'; c <= 'z'; c++) {
+      alphabet.add(c);
+    }
+    PermutationCode source = new PermutationCode(alphabet, true);
+    PermutationCode copy = new PermutationCode(new ArrayList<Character>(source.code));
+    CompiledPermutationCode first = this.registry.lookup(source);
+    CompiledPermutationCode second = this.registry.lookup(copy);
+    return t.checkExpect(first == second, true, "Equal permutations share a code")
+        && t.checkExpect(first.encode("hello"), source.encode("hello"), "Same encoding");
+  }
+
+  /**
+   * Test that concurrent lookups of one key compile it once
+   */
+  boolean testConcurrentLookups(Tester t) throws InterruptedException {
+    this.initExamples();
+    final CodecRegistry shared = new CodecRegistry(16);
+    final AtomicLong compiled = new AtomicLong();
+    final ICodecLoader loader = new ICodecLoader() {
+      public CompiledPermutationCode load(String key) {
+        compiled.incrementAndGet();
+        return new CompiledPermutationCode("ab".toCharArray(), "ba".toCharArray());
+      }
+    };
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            shared.lookup("hot", loader);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return t.checkExpect(compiled.get(), 1L, "Hot key compiled once")
+        && t.checkExpect(shared.hits() + shared.misses(), 8000L, "Every lookup counted");
+  }
+}
@@ -0,0 +1,273 @@
+import java.util.ArrayList;
+
+/**
+ * An immutable, table-driven form of a PermutationCode.
+ * The alphabet and code are copied into primitive lookup tables once, so encoding and
+ * decoding are a single array access per character and instances may be shared freely
+ * between threads.
+ */
+final class CompiledPermutationCode {
+  // The smallest and largest character that appears in the alphabet or the code
+  private final char base;
+  private final int span;
+
+  // encodeTable[c - base] is the encoding of c, decodeTable[c - base] is its decoding;
+  // characters that are not mapped translate to themselves
+  private final char[] encodeTable;
+  private final char[] decodeTable;
+
+  // Copies of the alphabet and code, kept for fingerprinting and serialization
+  private final char[] alphabet;
+  private final char[] code;
+
+  /**
+   * Compiles the given alphabet and code into lookup tables
+   *
+   * @param alphabet the plain-text alphabet
+   * @param code the permutation of the alphabet to use for encoding/decoding
+   * @throws IllegalArgumentException if code is not a permutation of alphabet
+   */
+  CompiledPermutationCode(ArrayList<Character> alphabet, ArrayList<Character> code) {
+    this(toArray(alphabet), toArray(code));
+  }
+
+  /**
+   * Compiles the alphabet and code of an existing PermutationCode.
+   * Later changes to the given PermutationCode do not affect this instance.
+   *
+   * @param source the permutation code to compile
+   * @throws IllegalArgumentException if the source code is not a permutation of its alphabet
+   */
+  CompiledPermutationCode(PermutationCode source) {
+    this(source.alphabet, source.code);
+  }
+
+  /**
+   * Compiles the given alphabet and code, both given as character arrays
+   *
+   * @param alphabet the plain-text alphabet
+   * @param code the permutation of the alphabet to use for encoding/decoding
+   * @throws IllegalArgumentException if code is not a permutation of alphabet
+   */
+  CompiledPermutationCode(char[] alphabet, char[] code) {
+    if (alphabet.length != code.length) {
+      throw new IllegalArgumentException("Alphabet and code must have the same length");
+    }
+    this.alphabet = alphabet.clone();
+    this.code = code.clone();
+
+    char lo = Character.MAX_VALUE;
+    char hi = Character.MIN_VALUE;
+    for (int i = 0; i < alphabet.length; i++) {
+      lo = (char) Math.min(lo, Math.min(alphabet[i], code[i]));
+      hi = (char) Math.max(hi, Math.max(alphabet[i], code[i]));
+    }
+    if (alphabet.length == 0) {
+      lo = 0;
+      hi = 0;
+    }
+    this.base = lo;
+    this.span = hi - lo + 1;
+
+    // Start from the identity mapping so unmapped characters are kept as is
+    this.encodeTable = new char[this.span];
+    this.decodeTable = new char[this.span];
+    boolean[] seenPlain = new boolean[this.span];
+    boolean[] seenCode = new boolean[this.span];
+    for (int i = 0; i < this.span; i++) {
+      this.encodeTable[i] = (char) (lo + i);
+      this.decodeTable[i] = (char) (lo + i);
+    }
+    for (int i = 0; i < alphabet.length; i++) {
+      int plain = alphabet[i] - lo;
+      int coded = code[i] - lo;
+      if (seenPlain[plain] || seenCode[coded]) {
+        throw new IllegalArgumentException("Code must be a permutation of the alphabet");
+      }
+      seenPlain[plain] = true;
+      seenCode[coded] = true;
+      this.encodeTable[plain] = code[i];
+      this.decodeTable[coded] = alphabet[i];
+    }
+    for (int i = 0; i < this.span; i++) {
+      if (seenPlain[i] != seenCode[i]) {
+        throw new IllegalArgumentException("Code must be a permutation of the alphabet");
+      }
+    }
+  }
+
+  /**
+   * Copies a list of characters into an array
+   */
+  static char[] toArray(ArrayList<Character> chars) {
+    char[] result = new char[chars.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = chars.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Encodes the message, one character at a time
+   *
+   * @param message the message to encode
+   * @return the encoded message
+   */
+  String encode(String message) {
+    char[] chars = message.toCharArray();
+    this.encodeInPlace(chars, 0, chars.length);
+    return new String(chars);
+  }
+
+  /**
+   * Decodes the encoded message, one character at a time
+   *
+   * @param encoded the encoded message
+   * @return the decoded message
+   */
+  String decode(String encoded) {
+    char[] chars = encoded.toCharArray();
+    this.decodeInPlace(chars, 0, chars.length);
+    return new String(chars);
+  }
+
+  /**
+   * Encodes len characters of the given array, starting at offset, in place
+   */
+  void encodeInPlace(char[] chars, int offset, int len) {
+    translate(this.encodeTable, chars, offset, len);
+  }
+
+  /**
+   * Decodes len characters of the given array, starting at offset, in place
+   */
+  void decodeInPlace(char[] chars, int offset, int len) {
+    translate(this.decodeTable, chars, offset, len);
+  }
+
+  /**
+   * Replaces every character in the given range with its entry in the table
+   */
+  private void translate(char[] table, char[] chars, int offset, int len) {
+    int end = offset + len;
+    for (int i = offset; i < end; i++) {
+      int index = chars[i] - this.base;
+      if (index >= 0 && index < this.span) {
+        chars[i] = table[index];
+      }
+    }
+  }
+
+  /**
+   * Produces a copy of the alphabet this code was compiled from
+   */
+  char[] alphabet() {
+    return this.alphabet.clone();
+  }
+
+  /**
+   * Produces a copy of the code this code was compiled from
+   */
+  char[] code() {
+    return this.code.clone();
+  }
+
+  /**
+   * Produces a string that identifies this permutation: two compiled codes with the
+   * same fingerprint encode and decode identically
+   */
+  String fingerprint() {
+    return fingerprint(this.alphabet, this.code);
+  }
+
+  /**
+   * Produces the fingerprint of the given alphabet and code without compiling them
+   */
+  static String fingerprint(char[] alphabet, char[] code) {
+    StringBuilder result = new StringBuilder(alphabet.length * 2 + 8);
+    result.append(alphabet.length).append(':').append(alphabet).append(code);
+    return result.toString();
+  }
+
+  /**
+   * Produces the fingerprint of the given permutation code without compiling it
+   */
+  static String fingerprint(PermutationCode source) {
+    return fingerprint(toArray(source.alphabet), toArray(source.code));
+  }
+}
+
+/**
+ * Examples and tests for the CompiledPermutationCode class
+ */
+class ExamplesCompiledPermutationCode {
+  // The 5-letter example from ExamplesPermutationCode: (a, b, c, d, e) -> (b, e, a, c, d)
+  CompiledPermutationCode code1;
+
+  // Reversed 26-letter alphabet
+  CompiledPermutationCode code2;
+
+  /**
+   * Initialize examples
+   */
+  void initExamples() {
+    this.code1 = new CompiledPermutationCode("abcde".toCharArray(), "beacd".toCharArray());
+    this.code2 = new CompiledPermutationCode(
+        "abcdefghijklmnopqrstuvwxyz".toCharArray(), "zyxwvutsrqponmlkjihgfedcba".toCharArray());
+  }
+
+  /**
+   * Test the encode and decode methods against the assignment examples
+   */
+  boolean testEncodeDecode(Tester t) {
+    this.initExamples();
+    return t.checkExpect(this.code1.encode("badace"), "ebcbad", "Encode badace")
+        && t.checkExpect(this.code1.decode("abeedc"), "cabbed", "Decode abeedc")
+        && t.checkExpect(this.code2.decode(this.code2.encode("hello, world")), "hello, world",
+            "Encode and decode are inverses");
+  }
+
+  /**
+   * Test that the compiled code agrees with the PermutationCode it was compiled from
+   */
+  boolean testMatchesPermutationCode(Tester t) {
+    ArrayList<Character> alphabet = new ArrayList<Character>();
+    for (char c = 'a'; c <= 'z'; c++) {
+      alphabet.add(c);
+    }
+    PermutationCode source = new PermutationCode(alphabet, true);
+    CompiledPermutationCode compiled = new CompiledPermutationCode(source);
+    String message = "the quick brown fox jumps over the lazy dog!";
+    return t.checkExpect(compiled.encode(message), source.encode(message), "Same encoding")
+        && t.checkExpect(compiled.decode(source.encode(message)), message, "Same decoding")
+        && t.checkExpect(compiled.fingerprint(), CompiledPermutationCode.fingerprint(source),
+            "Same fingerprint");
+  }
+
+  /**
+   * Test that compiling takes a snapshot of the source permutation code
+   */
+  boolean testSnapshot(Tester t) {
+    ArrayList<Character> alphabet = new ArrayList<Character>();
+    for (char c = 'a'; c <= 'z'; c++) {
+      alphabet.add(c);
+    }
+    PermutationCode source = new PermutationCode(alphabet, false);
+    CompiledPermutationCode compiled = new CompiledPermutationCode(source);
+    source.code.set(0, 'b');
+    source.code.set(1, 'a');
+    return t.checkExpect(compiled.encode("ab"), "ab", "Later changes are not seen");
+  }
+
+  /**
+   * Test that a code that is not a permutation of the alphabet is rejected
+   */
+  boolean testInvalidCode(Tester t) {
+    try {
+      new CompiledPermutationCode("abc".toCharArray(), "aab".toCharArray());
+      return t.checkExpect(false, true, "Should have thrown exception");
+    } catch (IllegalArgumentException e) {
+      return t.checkExpect(true, true, "Exception thrown correctly");
+    }
+  }
+}
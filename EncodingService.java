@@ -0,0 +1,558 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A front-end that coalesces individual encode and decode jobs into batches and runs the
+ * batches on an executor. Jobs wait in a bounded queue; a dispatcher thread drains up to
+ * maxBatchSize of them at a time and hands each batch to the executor, with at most
+ * maxInFlight batches running at once.
+ *
+ * The executor is supplied by the caller and is not shut down by this service, so it may
+ * be a fixed platform-thread pool or, on JDK 21 and later, a virtual-thread-per-task
+ * executor.
+ */
+class EncodingService {
+  // A single message waiting to be encoded or decoded
+  private static final class Job {
+    final CompiledPermutationCode codec;
+    final String message;
+    final boolean decode;
+    final CompletableFuture<String> result;
+    final long enqueuedAt;
+
+    Job(CompiledPermutationCode codec, String message, boolean decode) {
+      this.codec = codec;
+      this.message = message;
+      this.decode = decode;
+      this.result = new CompletableFuture<String>();
+      this.enqueuedAt = System.nanoTime();
+    }
+  }
+
+  private final ExecutorService executor;
+  private final ArrayBlockingQueue<Job> queue;
+  private final int maxBatchSize;
+  private final Semaphore inFlight;
+  private final Thread dispatcher;
+  private volatile boolean running;
+
+  private final long startedAt;
+  private final AtomicLong jobsCompleted = new AtomicLong();
+  private final AtomicLong batchesRun = new AtomicLong();
+  private final AtomicLong largestBatch = new AtomicLong();
+  private final AtomicLong queueNanos = new AtomicLong();
+
+  /**
+   * Constructor that runs batches on the given executor
+   *
+   * @param executor runs the batches; owned by the caller
+   * @param queueCapacity the maximum number of jobs waiting to be batched
+   * @param maxBatchSize the maximum number of jobs in one batch
+   * @param maxInFlight the maximum number of batches running at once
+   * @throws IllegalArgumentException if any of the limits is not positive
+   */
+  EncodingService(ExecutorService executor, int queueCapacity, int maxBatchSize,
+      int maxInFlight) {
+    if (queueCapacity <= 0 || maxBatchSize <= 0 || maxInFlight <= 0) {
+      throw new IllegalArgumentException("Queue capacity and batch limits must be positive");
+    }
+    this.executor = executor;
+    this.queue = new ArrayBlockingQueue<Job>(queueCapacity);
+    this.maxBatchSize = maxBatchSize;
+    this.inFlight = new Semaphore(maxInFlight);
+    this.running = true;
+    this.startedAt = System.nanoTime();
+    this.dispatcher = new Thread(new Runnable() {
+      public void run() {
+        EncodingService.this.dispatch();
+      }
+    }, "encoding-service-dispatcher");
+    this.dispatcher.setDaemon(true);
+    this.dispatcher.start();
+  }
+
+  /**
+   * Convenience constructor that runs batches on the given executor, sized for the
+   * number of available processors
+   *
+   * @param executor runs the batches; owned by the caller
+   */
+  EncodingService(ExecutorService executor) {
+    this(executor, 8192, 256, 2 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Produces an executor with one platform thread per available processor
+   */
+  static ExecutorService platformExecutor() {
+    return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Encodes the message with the given code once it has been batched.
+   * Blocks while the queue is full.
+   *
+   * @param codec the code to encode with
+   * @param message the message to encode
+   * @return the encoded message, once available
+   */
+  CompletableFuture<String> encode(CompiledPermutationCode codec, String message) {
+    return this.submit(new Job(codec, message, false));
+  }
+
+  /**
+   * Decodes the message with the given code once it has been batched.
+   * Blocks while the queue is full.
+   *
+   * @param codec the code to decode with
+   * @param encoded the message to decode
+   * @return the decoded message, once available
+   */
+  CompletableFuture<String> decode(CompiledPermutationCode codec, String encoded) {
+    return this.submit(new Job(codec, encoded, true));
+  }
+
+  /**
+   * Encodes every message with the given code
+   *
+   * @param codec the code to encode with
+   * @param messages the messages to encode
+   * @return the encoded messages in the given order, once all are available
+   */
+  CompletableFuture<ArrayList<String>> encodeAll(CompiledPermutationCode codec,
+      List<String> messages) {
+    return this.submitAll(codec, messages, false);
+  }
+
+  /**
+   * Decodes every message with the given code
+   *
+   * @param codec the code to decode with
+   * @param encoded the messages to decode
+   * @return the decoded messages in the given order, once all are available
+   */
+  CompletableFuture<ArrayList<String>> decodeAll(CompiledPermutationCode codec,
+      List<String> encoded) {
+    return this.submitAll(codec, encoded, true);
+  }
+
+  /**
+   * Submits one job per message and combines their results in order
+   */
+  private CompletableFuture<ArrayList<String>> submitAll(CompiledPermutationCode codec,
+      List<String> messages, boolean decode) {
+    final ArrayList<CompletableFuture<String>> parts =
+        new ArrayList<CompletableFuture<String>>(messages.size());
+    for (String message : messages) {
+      parts.add(this.submit(new Job(codec, message, decode)));
+    }
+    return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+        .thenApply(new Function<Void, ArrayList<String>>() {
+          public ArrayList<String> apply(Void ignored) {
+            ArrayList<String> results = new ArrayList<String>(parts.size());
+            for (CompletableFuture<String> part : parts) {
+              results.add(part.join());
+            }
+            return results;
+          }
+        });
+  }
+
+  /**
+   * Adds the job to the queue, or fails it if this service has been shut down
+   */
+  private CompletableFuture<String> submit(Job job) {
+    if (!this.running) {
+      job.result.completeExceptionally(new RejectedExecutionException("Service is shut down"));
+      return job.result;
+    }
+    try {
+      this.queue.put(job);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      job.result.completeExceptionally(e);
+      return job.result;
+    }
+    // The dispatcher may have stopped between the check above and the put
+    if (!this.running && this.queue.remove(job)) {
+      job.result.completeExceptionally(new RejectedExecutionException("Service is shut down"));
+    }
+    return job.result;
+  }
+
+  /**
+   * Drains the queue into batches until this service is shut down and the queue is empty
+   */
+  private void dispatch() {
+    // The batch drained from the queue but not yet handed to the executor, if any
+    ArrayList<Job> pending = null;
+    while (this.running || !this.queue.isEmpty()) {
+      try {
+        Job first = this.queue.poll(10, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        pending = new ArrayList<Job>(this.maxBatchSize);
+        pending.add(first);
+        this.queue.drainTo(pending, this.maxBatchSize - 1);
+        this.inFlight.acquire();
+        this.runBatch(pending);
+        pending = null;
+      } catch (InterruptedException e) {
+        // Interrupted by shutdownNow: fail whatever is still waiting, including a batch
+        // that was drained but not yet handed to the executor
+        if (pending != null) {
+          for (Job drained : pending) {
+            drained.result.completeExceptionally(
+                new RejectedExecutionException("Service is shut down"));
+          }
+        }
+        Job job = this.queue.poll();
+        while (job != null) {
+          job.result.completeExceptionally(new RejectedExecutionException("Service is shut down"));
+          job = this.queue.poll();
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Hands the batch to the executor, failing its jobs if the executor rejects it
+   */
+  private void runBatch(final ArrayList<Job> batch) {
+    try {
+      this.executor.execute(new Runnable() {
+        public void run() {
+          try {
+            EncodingService.this.process(batch);
+          } finally {
+            EncodingService.this.inFlight.release();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      this.inFlight.release();
+      for (Job job : batch) {
+        job.result.completeExceptionally(e);
+      }
+    }
+  }
+
+  /**
+   * Encodes or decodes every job in the batch, reusing one buffer for all of them
+   */
+  private void process(ArrayList<Job> batch) {
+    long start = System.nanoTime();
+    long waited = 0;
+    char[] buffer = new char[64];
+    for (Job job : batch) {
+      waited += start - job.enqueuedAt;
+      try {
+        int len = job.message.length();
+        if (buffer.length < len) {
+          buffer = new char[Math.max(len, buffer.length * 2)];
+        }
+        job.message.getChars(0, len, buffer, 0);
+        if (job.decode) {
+          job.codec.decodeInPlace(buffer, 0, len);
+        } else {
+          job.codec.encodeInPlace(buffer, 0, len);
+        }
+        job.result.complete(new String(buffer, 0, len));
+      } catch (RuntimeException e) {
+        job.result.completeExceptionally(e);
+      }
+    }
+    this.queueNanos.addAndGet(waited);
+    this.jobsCompleted.addAndGet(batch.size());
+    this.batchesRun.incrementAndGet();
+    long size = batch.size();
+    long largest = this.largestBatch.get();
+    while (size > largest && !this.largestBatch.compareAndSet(largest, size)) {
+      largest = this.largestBatch.get();
+    }
+  }
+
+  /**
+   * Stops accepting jobs; jobs already queued are still run
+   */
+  void shutdown() {
+    this.running = false;
+  }
+
+  /**
+   * Stops accepting jobs and fails the jobs that have not been handed to the executor yet,
+   * including a batch waiting for a free in-flight slot. Batches already handed to the
+   * executor still run.
+   */
+  void shutdownNow() {
+    this.running = false;
+    this.dispatcher.interrupt();
+  }
+
+  /**
+   * Waits until every queued job has been handed to the executor after a shutdown
+   *
+   * @param timeoutMillis the longest time to wait
+   * @return true if the dispatcher finished in time
+   */
+  boolean awaitDispatch(long timeoutMillis) throws InterruptedException {
+    this.dispatcher.join(timeoutMillis);
+    return !this.dispatcher.isAlive();
+  }
+
+  /**
+   * Counts the jobs waiting to be batched
+   */
+  int queued() {
+    return this.queue.size();
+  }
+
+  /**
+   * Counts the jobs that have been encoded or decoded
+   */
+  long jobsCompleted() {
+    return this.jobsCompleted.get();
+  }
+
+  /**
+   * Counts the batches that have been run
+   */
+  long batchesRun() {
+    return this.batchesRun.get();
+  }
+
+  /**
+   * Produces the average number of jobs per batch, or 0 if no batch has been run
+   */
+  double averageBatchSize() {
+    long batches = this.batchesRun.get();
+    return batches == 0 ? 0 : (double) this.jobsCompleted.get() / batches;
+  }
+
+  /**
+   * Produces the largest number of jobs run in one batch
+   */
+  long largestBatchSize() {
+    return this.largestBatch.get();
+  }
+
+  /**
+   * Produces the average time, in nanoseconds, a job waited between being submitted and
+   * its batch starting, or 0 if no job has been run
+   */
+  double averageQueueLatencyNanos() {
+    long jobs = this.jobsCompleted.get();
+    return jobs == 0 ? 0 : (double) this.queueNanos.get() / jobs;
+  }
+
+  /**
+   * Produces the number of jobs completed per second since this service started
+   */
+  double throughput() {
+    long elapsed = System.nanoTime() - this.startedAt;
+    return elapsed == 0 ? 0 : this.jobsCompleted.get() * 1e9 / elapsed;
+  }
+}
+
+/**
+ * Examples and tests for the EncodingService class
+ */
+class ExamplesEncodingService {
+  // The 5-letter example: (a, b, c, d, e) -> (b, e, a, c, d)
+  CompiledPermutationCode code1;
+
+  // Executor and service shared by one test
+  ExecutorService executor;
+  EncodingService service;
+
+  /**
+   * Initialize examples
+   */
+  void initExamples() {
+    this.code1 = new CompiledPermutationCode("abcde".toCharArray(), "beacd".toCharArray());
+    this.executor = Executors.newFixedThreadPool(4);
+    this.service = new EncodingService(this.executor, 64, 8, 4);
+  }
+
+  /**
+   * Stops the service and executor started by initExamples
+   */
+  void stopExamples() throws InterruptedException {
+    this.service.shutdown();
+    this.service.awaitDispatch(1000);
+    this.executor.shutdown();
+    this.executor.awaitTermination(1, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Test encoding and decoding single messages
+   */
+  boolean testEncodeDecode(Tester t) throws Exception {
+    this.initExamples();
+    String encoded = this.service.encode(this.code1, "badace").get(1, TimeUnit.SECONDS);
+    String decoded = this.service.decode(this.code1, "abeedc").get(1, TimeUnit.SECONDS);
+    this.stopExamples();
+    return t.checkExpect(encoded, "ebcbad", "Encode badace")
+        && t.checkExpect(decoded, "cabbed", "Decode abeedc");
+  }
+
+  /**
+   * Test that bulk jobs larger than the queue are batched and keep their order
+   */
+  boolean testEncodeAll(Tester t) throws Exception {
+    this.initExamples();
+    ArrayList<String> messages = new ArrayList<String>();
+    ArrayList<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++) {
+      messages.add("badace" + i);
+      expected.add("ebcbad" + i);
+    }
+    ArrayList<String> encoded = this.service.encodeAll(this.code1, messages)
+        .get(5, TimeUnit.SECONDS);
+    ArrayList<String> decoded = this.service.decodeAll(this.code1, encoded)
+        .get(5, TimeUnit.SECONDS);
+    this.stopExamples();
+    return t.checkExpect(encoded, expected, "Encoded in order")
+        && t.checkExpect(decoded, messages, "Decoded in order")
+        && t.checkExpect(this.service.jobsCompleted(), 2000L, "Every job counted")
+        && t.checkExpect(this.service.largestBatchSize() <= 8, true, "Batches are bounded")
+        && t.checkExpect(this.service.averageBatchSize() >= 1.0, true, "Batch size measured");
+  }
+
+  /**
+   * Test that jobs submitted after shutdown are rejected
+   */
+  boolean testShutdown(Tester t) throws Exception {
+    this.initExamples();
+    this.stopExamples();
+    CompletableFuture<String> late = this.service.encode(this.code1, "abc");
+    try {
+      late.get(1, TimeUnit.SECONDS);
+      return t.checkExpect(false, true, "Should have been rejected");
+    } catch (ExecutionException e) {
+      return t.checkExpect(e.getCause() instanceof RejectedExecutionException, true,
+          "Rejected after shutdown");
+    }
+  }
+
+  /**
+   * Produces true if the future failed because the service was shut down
+   */
+  boolean rejected(CompletableFuture<String> future) throws InterruptedException {
+    try {
+      future.get(1, TimeUnit.SECONDS);
+      return false;
+    } catch (ExecutionException e) {
+      return e.getCause() instanceof RejectedExecutionException;
+    } catch (TimeoutException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Test that at most maxInFlight batches run at once, and that shutdownNow fails both the
+   * batch waiting for a slot and the jobs still queued while running batches complete
+   */
+  boolean testShutdownNowWithBlockedBatch(Tester t) throws Exception {
+    this.code1 = new CompiledPermutationCode("abcde".toCharArray(), "beacd".toCharArray());
+    this.executor = Executors.newSingleThreadExecutor();
+    this.service = new EncodingService(this.executor, 64, 1, 1);
+
+    // Hold the only executor thread so the first batch keeps its in-flight slot
+    final CountDownLatch release = new CountDownLatch(1);
+    this.executor.execute(new Runnable() {
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+
+    CompletableFuture<String> running = this.service.encode(this.code1, "badace");
+    ArrayList<CompletableFuture<String>> waiting = new ArrayList<CompletableFuture<String>>();
+    for (int i = 0; i < 4; i++) {
+      waiting.add(this.service.encode(this.code1, "abc"));
+    }
+    // The dispatcher has taken the second job and is blocked on the in-flight slot
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (this.service.queued() > 3 && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    boolean heldBack = this.service.queued() == 3 && this.service.jobsCompleted() == 0;
+
+    this.service.shutdownNow();
+    boolean dispatcherStopped = this.service.awaitDispatch(1000);
+    boolean allRejected = true;
+    for (CompletableFuture<String> future : waiting) {
+      allRejected = allRejected && this.rejected(future);
+    }
+    release.countDown();
+    String first = running.get(1, TimeUnit.SECONDS);
+    this.executor.shutdown();
+    this.executor.awaitTermination(1, TimeUnit.SECONDS);
+    return t.checkExpect(heldBack, true, "Second batch waits for a free slot")
+        && t.checkExpect(dispatcherStopped, true, "Dispatcher stops")
+        && t.checkExpect(allRejected, true, "Pending and queued jobs are rejected")
+        && t.checkExpect(first, "ebcbad", "Batch already running completes");
+  }
+
+  /**
+   * Test that every future completes when shutdownNow races with concurrent submitters
+   */
+  boolean testShutdownNowRace(Tester t) throws Exception {
+    this.initExamples();
+    final ArrayList<CompletableFuture<String>> futures =
+        new ArrayList<CompletableFuture<String>>();
+    Thread[] submitters = new Thread[4];
+    for (int i = 0; i < submitters.length; i++) {
+      submitters[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 2000; j++) {
+            CompletableFuture<String> future =
+                ExamplesEncodingService.this.service.encode(
+                    ExamplesEncodingService.this.code1, "badace");
+            synchronized (futures) {
+              futures.add(future);
+            }
+          }
+        }
+      });
+      submitters[i].start();
+    }
+    Thread.sleep(5);
+    this.service.shutdownNow();
+    for (Thread submitter : submitters) {
+      submitter.join();
+    }
+    boolean allDone = true;
+    for (CompletableFuture<String> future : futures) {
+      try {
+        allDone = allDone && future.get(1, TimeUnit.SECONDS).equals("ebcbad");
+      } catch (ExecutionException e) {
+        allDone = allDone && e.getCause() instanceof RejectedExecutionException;
+      } catch (TimeoutException e) {
+        allDone = false;
+      }
+    }
+    this.executor.shutdown();
+    this.executor.awaitTermination(1, TimeUnit.SECONDS);
+    return t.checkExpect(allDone, true, "Every future completes or is rejected")
+        && t.checkExpect(this.service.queued(), 0, "Nothing left queued");
+  }
+}
@@ -0,0 +1,559 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Recovers the key of a PermutationCode over the letters a-z from ciphertext alone.
+ * Candidate keys are scored by how well the bigrams of the text they decode to match the
+ * bigram statistics of a reference text, and improved by hill climbing over letter swaps.
+ * Independent restarts run in parallel on a fork/join pool.
+ *
+ * The ciphertext is reduced to a table of bigram counts once, so scoring a candidate key
+ * costs the same for a short message as for a megabyte corpus and allocates nothing.
+ */
+class FrequencyCracker {
+  static final int LETTERS = 26;
+
+  // logProb[a * LETTERS + b] is the log probability that plain letter b follows letter a
+  private final double[] logProb;
+
+  // Plain letters from most to least frequent in the reference text
+  private final int[] byFrequency;
+
+  /**
+   * Constructor that learns letter statistics from the given reference text
+   *
+   * @param reference text in the same language as the plain text to recover
+   */
+  FrequencyCracker(String reference) {
+    long[] pairs = new long[LETTERS * LETTERS];
+    long[] singles = new long[LETTERS];
+    int prev = -1;
+    for (int i = 0; i < reference.length(); i++) {
+      int cur = letterIndex(reference.charAt(i));
+      if (cur >= 0) {
+        singles[cur]++;
+        if (prev >= 0) {
+          pairs[prev * LETTERS + cur]++;
+        }
+      }
+      prev = cur;
+    }
+
+    // Add-one smoothing so unseen bigrams are unlikely rather than impossible
+    this.logProb = new double[LETTERS * LETTERS];
+    for (int a = 0; a < LETTERS; a++) {
+      long row = 0;
+      for (int b = 0; b < LETTERS; b++) {
+        row += pairs[a * LETTERS + b];
+      }
+      for (int b = 0; b < LETTERS; b++) {
+        this.logProb[a * LETTERS + b] =
+            Math.log((pairs[a * LETTERS + b] + 1.0) / (row + LETTERS));
+      }
+    }
+    this.byFrequency = rankByCount(singles);
+  }
+
+  /**
+   * Produces the index of the given lowercase letter, or -1 if it is not one
+   */
+  static int letterIndex(char c) {
+    return c >= 'a' && c <= 'z' ? c - 'a' : -1;
+  }
+
+  /**
+   * Produces the letter indices ordered from the highest to the lowest count
+   */
+  private static int[] rankByCount(long[] counts) {
+    int[] order = new int[LETTERS];
+    for (int i = 0; i < LETTERS; i++) {
+      order[i] = i;
+    }
+    // Insertion sort keeps ties in alphabetical order
+    for (int i = 1; i < LETTERS; i++) {
+      int letter = order[i];
+      int j = i - 1;
+      while (j >= 0 && counts[order[j]] < counts[letter]) {
+        order[j + 1] = order[j];
+        j--;
+      }
+      order[j + 1] = letter;
+    }
+    return order;
+  }
+
+  /**
+   * The bigram and letter counts of a ciphertext, which is all the cracker needs of it
+   */
+  static final class CipherStats {
+    // pairs[a * LETTERS + b] counts cipher letter b following cipher letter a
+    final int[] pairs;
+    // Indices a * LETTERS + b of the cipher bigrams that occur, and how often each does
+    final int[] pairIndex;
+    final int[] pairCount;
+    final long[] singles;
+
+    /**
+     * Counts the bigrams of the given ciphertext
+     */
+    CipherStats(CharSequence ciphertext) {
+      int[] pairs = new int[LETTERS * LETTERS];
+      this.pairs = pairs;
+      this.singles = new long[LETTERS];
+      int prev = -1;
+      for (int i = 0; i < ciphertext.length(); i++) {
+        int cur = letterIndex(ciphertext.charAt(i));
+        if (cur >= 0) {
+          this.singles[cur]++;
+          if (prev >= 0) {
+            pairs[prev * LETTERS + cur]++;
+          }
+        }
+        prev = cur;
+      }
+
+      // Keep only the bigrams that occur, so scoring skips the empty cells
+      int used = 0;
+      for (int count : pairs) {
+        if (count > 0) {
+          used++;
+        }
+      }
+      this.pairIndex = new int[used];
+      this.pairCount = new int[used];
+      int next = 0;
+      for (int i = 0; i < pairs.length; i++) {
+        if (pairs[i] > 0) {
+          this.pairIndex[next] = i;
+          this.pairCount[next] = pairs[i];
+          next++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Scores the candidate key against the ciphertext: higher is more plausible
+   *
+   * @param stats the counts of the ciphertext
+   * @param key key[c] is the plain letter that cipher letter c decodes to
+   * @return the log likelihood of the decoded text under the reference bigrams
+   */
+  double score(CipherStats stats, int[] key) {
+    double total = 0;
+    int[] index = stats.pairIndex;
+    int[] count = stats.pairCount;
+    for (int i = 0; i < index.length; i++) {
+      int a = key[index[i] / LETTERS];
+      int b = key[index[i] % LETTERS];
+      total += count[i] * this.logProb[a * LETTERS + b];
+    }
+    return total;
+  }
+
+  /**
+   * Recovers the most plausible key for the given ciphertext
+   *
+   * @param ciphertext text produced by encoding with an unknown PermutationCode over a-z
+   * @param restarts the number of independent hill climbs to run
+   * @param parallelism the number of threads to run them on
+   * @param seed seeds the restarts; the same seed gives the same key for any parallelism
+   * @return the compiled code that decodes the ciphertext
+   */
+  CompiledPermutationCode crack(CharSequence ciphertext, int restarts, int parallelism,
+      long seed) {
+    if (restarts <= 0 || parallelism <= 0) {
+      throw new IllegalArgumentException("Restarts and parallelism must be positive");
+    }
+    CipherStats stats = new CipherStats(ciphertext);
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      Climb best = pool.invoke(new Restarts(this, stats, seed, 0, restarts));
+      return toCode(best.key);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Produces the code whose decoding applies the given key
+   */
+  static CompiledPermutationCode toCode(int[] key) {
+    char[] alphabet = new char[LETTERS];
+    char[] code = new char[LETTERS];
+    for (int c = 0; c < LETTERS; c++) {
+      alphabet[c] = (char) ('a' + key[c]);
+      code[c] = (char) ('a' + c);
+    }
+    return new CompiledPermutationCode(alphabet, code);
+  }
+
+  /**
+   * Produces the starting key of a restart: the first restart matches letters by
+   * frequency, later ones shuffle that guess by a growing number of random swaps
+   */
+  private int[] startingKey(CipherStats stats, int restart, SplittableRandom random) {
+    int[] cipherRank = rankByCount(stats.singles);
+    int[] key = new int[LETTERS];
+    for (int i = 0; i < LETTERS; i++) {
+      key[cipherRank[i]] = this.byFrequency[i];
+    }
+    int swaps = Math.min(restart, LETTERS) * 2;
+    for (int i = 0; i < swaps; i++) {
+      swap(key, random.nextInt(LETTERS), random.nextInt(LETTERS));
+    }
+    return key;
+  }
+
+  /**
+   * Swaps two entries of the key
+   */
+  private static void swap(int[] key, int i, int j) {
+    int tmp = key[i];
+    key[i] = key[j];
+    key[j] = tmp;
+  }
+
+  /**
+   * Improves the key in place by swapping pairs of letters until no swap helps
+   *
+   * @return the score of the improved key
+   */
+  double climb(CipherStats stats, int[] key) {
+    boolean improved = true;
+    while (improved) {
+      improved = false;
+      for (int i = 0; i < LETTERS - 1; i++) {
+        for (int j = i + 1; j < LETTERS; j++) {
+          if (this.swapDelta(stats, key, i, j) > 0) {
+            swap(key, i, j);
+            improved = true;
+          }
+        }
+      }
+    }
+    // Rescore once so the result does not carry rounding from the summed deltas
+    return this.score(stats, key);
+  }
+
+  /**
+   * Computes how much the score would change if the plain letters of cipher letters i and
+   * j were swapped. Only the bigrams in rows and columns i and j change, so this costs
+   * about four rows of the table instead of a full rescore.
+   *
+   * @param stats the counts of the ciphertext
+   * @param key the current key, which is left unchanged
+   * @param i a cipher letter
+   * @param j another cipher letter
+   * @return the score after the swap minus the score before it
+   */
+  double swapDelta(CipherStats stats, int[] key, int i, int j) {
+    int[] pairs = stats.pairs;
+    double delta = 0;
+    // Rows i and j, every column
+    for (int b = 0; b < LETTERS; b++) {
+      delta += this.cellDelta(pairs, key, i, j, i, b) + this.cellDelta(pairs, key, i, j, j, b);
+    }
+    // Columns i and j, rows other than i and j, which were counted above
+    for (int a = 0; a < LETTERS; a++) {
+      if (a != i && a != j) {
+        delta += this.cellDelta(pairs, key, i, j, a, i) + this.cellDelta(pairs, key, i, j, a, j);
+      }
+    }
+    return delta;
+  }
+
+  /**
+   * Computes the change in the contribution of cipher bigram (a, b) when the plain letters
+   * of cipher letters i and j are swapped
+   */
+  private double cellDelta(int[] pairs, int[] key, int i, int j, int a, int b) {
+    int count = pairs[a * LETTERS + b];
+    if (count == 0) {
+      return 0;
+    }
+    int swappedA = a == i ? key[j] : a == j ? key[i] : key[a];
+    int swappedB = b == i ? key[j] : b == j ? key[i] : key[b];
+    return count * (this.logProb[swappedA * LETTERS + swappedB]
+        - this.logProb[key[a] * LETTERS + key[b]]);
+  }
+
+  // The outcome of one or more restarts: the best key found and the restart that found it
+  static final class Climb {
+    final int[] key;
+    final double score;
+    final int restart;
+
+    Climb(int[] key, double score, int restart) {
+      this.key = key;
+      this.score = score;
+      this.restart = restart;
+    }
+
+    /**
+     * Produces the better of this and that, preferring the earlier restart on a tie so
+     * the result does not depend on scheduling
+     */
+    Climb better(Climb that) {
+      if (that.score > this.score || (that.score == this.score && that.restart < this.restart)) {
+        return that;
+      }
+      return this;
+    }
+  }
+
+  // Runs the restarts in [from, to), splitting the range until single restarts remain
+  static final class Restarts extends RecursiveTask<Climb> {
+    private static final long serialVersionUID = 1L;
+
+    private final FrequencyCracker cracker;
+    private final CipherStats stats;
+    private final long seed;
+    private final int from;
+    private final int to;
+
+    Restarts(FrequencyCracker cracker, CipherStats stats, long seed, int from, int to) {
+      this.cracker = cracker;
+      this.stats = stats;
+      this.seed = seed;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Climb compute() {
+      if (this.to - this.from == 1) {
+        SplittableRandom random = new SplittableRandom(this.seed + this.from);
+        int[] key = this.cracker.startingKey(this.stats, this.from, random);
+        double score = this.cracker.climb(this.stats, key);
+        return new Climb(key, score, this.from);
+      }
+      int mid = (this.from + this.to) >>> 1;
+      Restarts left = new Restarts(this.cracker, this.stats, this.seed, this.from, mid);
+      Restarts right = new Restarts(this.cracker, this.stats, this.seed, mid, this.to);
+      left.fork();
+      Climb rightBest = right.compute();
+      return left.join().better(rightBest);
+    }
+  }
+}
+
+/**
+ * Measures how the cracker scales with the number of threads on a large ciphertext
+ */
+class FrequencyCrackerBenchmark {
+  // English text used as the reference statistics and, repeated, as the secret message
+  static final String SAMPLE =
+      "it was late in the evening when the travellers reached the old inn at the edge of "
+      + "the forest. the rain had followed them all the way from the river, and their coats "
+      + "were heavy with water. the keeper of the inn was a quiet man who said little, but "
+      + "he brought them bread and hot soup and showed them to a room near the kitchen where "
+      + "the fire was still burning. they sat for a long time without speaking, listening to "
+      + "the wind against the shutters and the slow drip of water from the roof. at last the "
+      + "younger of the two asked whether they would be able to cross the mountains before "
+      + "the snow came. the older one did not answer at once. he had made the journey many "
+      + "times when he was young, and he knew how quickly the weather could turn in the high "
+      + "passes. if we leave at first light, he said, and if the road is not washed away, we "
+      + "may reach the village on the other side in four days. but we must not waste any "
+      + "time, and we must carry enough food for a week in case we are delayed. the younger "
+      + "man nodded and looked into the fire. he was thinking of his family, who were waiting "
+      + "for news of him, and of the letter he had promised to deliver to the judge in the "
+      + "capital. it was a small thing, only a few pages sealed with wax, but he had been told "
+      + "that it was more valuable than anything else they carried. in the morning the sky "
+      + "was clear and cold, and the two men set out along the narrow path that climbed "
+      + "between the pines. by noon they could see the whole valley below them, the river "
+      + "shining like a thread of silver and the smoke rising from the chimneys of the farms. "
+      + "they did not stop to rest until the sun was low, and then only for a quick meal of "
+      + "cheese and dried fruit before they went on in the dusk.";
+
+  // Warm-up runs before measuring, at least and at most, and how many consecutive runs
+  // must be within 5% of the one before for timings to count as settled
+  static final int MIN_WARMUP_RUNS = 10;
+  static final int MAX_WARMUP_RUNS = 60;
+  static final int SETTLED_RUNS = 3;
+
+  // Timed runs per thread count; the median and best of them are reported
+  static final int TIMED_RUNS = 7;
+
+  /**
+   * Encodes about a megabyte of the sample text with a random key and times the
+   * recovery with 1, 2, 4, ... threads, after warming up until run times settle
+   *
+   * @param args optionally, the number of restarts (default 64) and the largest number of
+   *     threads to try (default the number of available processors)
+   */
+  public static void main(String[] args) {
+    int restarts = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int processors = Runtime.getRuntime().availableProcessors();
+    int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : processors;
+    StringBuilder corpus = new StringBuilder(1 << 20);
+    while (corpus.length() < (1 << 20)) {
+      corpus.append(SAMPLE).append(' ');
+    }
+    ArrayList<Character> alphabet = new ArrayList<Character>();
+    for (char c = 'a'; c <= 'z'; c++) {
+      alphabet.add(c);
+    }
+    CompiledPermutationCode secret =
+        new CompiledPermutationCode(new PermutationCode(alphabet, true));
+    String plain = corpus.toString();
+    String ciphertext = secret.encode(plain);
+    FrequencyCracker cracker = new FrequencyCracker(SAMPLE);
+
+    // Warm up, alternating one thread and the largest thread count, until run times at
+    // each have settled, so the measured runs use fully compiled code
+    double previousSingle = Double.MAX_VALUE;
+    double previousMax = Double.MAX_VALUE;
+    int settled = 0;
+    int warmups = 0;
+    while (warmups < MAX_WARMUP_RUNS) {
+      double single = time(cracker, ciphertext, restarts, 1);
+      double max = time(cracker, ciphertext, restarts, maxThreads);
+      warmups += 2;
+      boolean stable = Math.abs(single - previousSingle) <= 0.05 * previousSingle
+          && Math.abs(max - previousMax) <= 0.05 * previousMax;
+      settled = stable ? settled + 1 : 0;
+      previousSingle = single;
+      previousMax = max;
+      if (warmups >= MIN_WARMUP_RUNS && settled >= SETTLED_RUNS) {
+        break;
+      }
+    }
+
+    System.out.printf("available processors=%d restarts=%d chars=%d warmup runs=%d%n",
+        processors, restarts, ciphertext.length(), warmups);
+    double baseline = 0;
+    for (int threads = 1; threads <= maxThreads; threads = threads * 2) {
+      double[] runs = new double[TIMED_RUNS];
+      for (int i = 0; i < TIMED_RUNS; i++) {
+        runs[i] = time(cracker, ciphertext, restarts, threads);
+      }
+      Arrays.sort(runs);
+      double median = runs[TIMED_RUNS / 2];
+      if (threads == 1) {
+        baseline = median;
+      }
+      boolean recovered =
+          cracker.crack(ciphertext, restarts, threads, 42).decode(ciphertext).equals(plain);
+      System.out.printf("threads=%d median=%.1fms best=%.1fms speedup=%.2fx recovered=%b%s%n",
+          threads, median, runs[0], baseline / median, recovered,
+          threads > processors ? " (more threads than processors)" : "");
+    }
+  }
+
+  /**
+   * Produces the time, in milliseconds, of one crack of the ciphertext
+   */
+  static double time(FrequencyCracker cracker, String ciphertext, int restarts, int threads) {
+    long start = System.nanoTime();
+    cracker.crack(ciphertext, restarts, threads, 42);
+    return (System.nanoTime() - start) / 1e6;
+  }
+}
+
+/**
+ * Examples and tests for the FrequencyCracker class
+ */
+class ExamplesFrequencyCracker {
+  // The benchmark's English sample, used as reference statistics and as secret messages
+  static final String SAMPLE = FrequencyCrackerBenchmark.SAMPLE;
+
+  // Reversed-alphabet key used to produce the ciphertext
+  CompiledPermutationCode secret;
+  FrequencyCracker cracker;
+
+  /**
+   * Initialize examples
+   */
+  void initExamples() {
+    this.secret = new CompiledPermutationCode(
+        "abcdefghijklmnopqrstuvwxyz".toCharArray(), "zyxwvutsrqponmlkjihgfedcba".toCharArray());
+    this.cracker = new FrequencyCracker(SAMPLE);
+  }
+
+  /**
+   * Produces the fraction of characters at which the two texts agree
+   */
+  double agreement(String expected, String actual) {
+    int same = 0;
+    for (int i = 0; i < expected.length(); i++) {
+      if (expected.charAt(i) == actual.charAt(i)) {
+        same++;
+      }
+    }
+    return (double) same / expected.length();
+  }
+
+  /**
+   * Test that a message the cracker was not trained on is mostly recovered: train on the
+   * first half of the sample and crack the second half
+   */
+  boolean testCrackHeldOut(Tester t) {
+    int split = SAMPLE.indexOf(". ", SAMPLE.length() / 2) + 2;
+    FrequencyCracker trained = new FrequencyCracker(SAMPLE.substring(0, split));
+    String plain = SAMPLE.substring(split);
+    String ciphertext = new CompiledPermutationCode(
+        "abcdefghijklmnopqrstuvwxyz".toCharArray(), "zyxwvutsrqponmlkjihgfedcba".toCharArray())
+        .encode(plain);
+    CompiledPermutationCode found = trained.crack(ciphertext, 16, 2, 7);
+    double recovered = this.agreement(plain, found.decode(ciphertext));
+    return t.checkExpect(recovered >= 0.9, true, "Most of the held-out text recovered");
+  }
+
+  /**
+   * Test that the swap delta agrees with rescoring the swapped key
+   */
+  boolean testSwapDelta(Tester t) {
+    this.initExamples();
+    FrequencyCracker.CipherStats stats =
+        new FrequencyCracker.CipherStats(this.secret.encode(SAMPLE));
+    int[] key = new int[FrequencyCracker.LETTERS];
+    for (int c = 0; c < FrequencyCracker.LETTERS; c++) {
+      key[c] = (c * 7) % FrequencyCracker.LETTERS;
+    }
+    boolean matches = true;
+    for (int i = 0; i < FrequencyCracker.LETTERS - 1; i++) {
+      for (int j = i + 1; j < FrequencyCracker.LETTERS; j++) {
+        double before = this.cracker.score(stats, key);
+        double delta = this.cracker.swapDelta(stats, key, i, j);
+        int[] swapped = key.clone();
+        swapped[i] = key[j];
+        swapped[j] = key[i];
+        double after = this.cracker.score(stats, swapped);
+        matches = matches && Math.abs(before + delta - after) < 1e-6;
+      }
+    }
+    return t.checkExpect(matches, true, "Delta matches full rescore");
+  }
+
+  /**
+   * Test that the recovered key does not depend on the number of threads
+   */
+  boolean testDeterministic(Tester t) {
+    this.initExamples();
+    String ciphertext = this.secret.encode(SAMPLE);
+    CompiledPermutationCode one = this.cracker.crack(ciphertext, 6, 1, 11);
+    CompiledPermutationCode three = this.cracker.crack(ciphertext, 6, 3, 11);
+    return t.checkExpect(one.fingerprint(), three.fingerprint(), "Same key for any parallelism");
+  }
+
+  /**
+   * Test that the true key scores better than the identity key
+   */
+  boolean testScore(Tester t) {
+    this.initExamples();
+    FrequencyCracker.CipherStats stats =
+        new FrequencyCracker.CipherStats(this.secret.encode(SAMPLE));
+    int[] identity = new int[FrequencyCracker.LETTERS];
+    int[] truth = new int[FrequencyCracker.LETTERS];
+    for (int c = 0; c < FrequencyCracker.LETTERS; c++) {
+      identity[c] = c;
+      truth[c] = FrequencyCracker.LETTERS - 1 - c;
+    }
+    return t.checkExpect(this.cracker.score(stats, truth) > this.cracker.score(stats, identity),
+        true, "True key scores higher");
+  }
+}